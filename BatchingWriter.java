@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+/**
+ * Class is used to write a batch of messages to a client in one go.
+ *
+ * Each message is put in its own buffer and all the buffers are handed to the channel in a single gathering write.
+ * This means a batch of messages is usually one write system call rather than one for each message.
+ * If the socket has no channel then the batch is printed to a PrintWriter and flushed once at the end instead.
+ */
+public class BatchingWriter {
+
+    private GatheringByteChannel channel;
+    //only used when there is no channel
+    private PrintWriter clientOut;
+    //same charset and line separator as the PrintWriter used by the client to read messages.
+    private Charset charset = Charset.defaultCharset();
+    private String lineSeparator = System.lineSeparator();
+
+    /**
+     * Constructor.
+     * Purpose - sets the channel the messages are written to.
+     *
+     * @param channel
+     */
+    public BatchingWriter(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+
+    /**
+     * Constructor.
+     * Purpose - sets the output stream the messages are written to when the socket has no channel.
+     *
+     * @param outputStream
+     */
+    public BatchingWriter(OutputStream outputStream) {
+        //autoflush is off so the whole batch is flushed together
+        this.clientOut = new PrintWriter(outputStream, false);
+    }
+
+
+    /**
+     * Method Purpose - write every message in the batch to the channel, each on its own line.
+     *
+     * A gathering write may not write all the buffers at once, so it keeps writing until the last buffer is empty.
+     *
+     * @param messages
+     * @throws IOException if the client can no longer be written to
+     */
+    public void write(ArrayList<String> messages) throws IOException {
+        if (channel == null) {
+            for (int i = 0; i < messages.size(); i++) {
+                clientOut.println(messages.get(i));
+            }
+            clientOut.flush();
+            //PrintWriter does not throw, so check if writing failed
+            if (clientOut.checkError()) {
+                throw new IOException("failed to write to client");
+            }
+            return;
+        }
+
+        ByteBuffer[] buffers = new ByteBuffer[messages.size()];
+        for (int i = 0; i < messages.size(); i++) {
+            buffers[i] = charset.encode(messages.get(i) + lineSeparator);
+        }
+
+        ByteBuffer lastBuffer = buffers[buffers.length - 1];
+        while (lastBuffer.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+}
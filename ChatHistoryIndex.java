@@ -0,0 +1,207 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Thread is used to keep a searchable index of the chat messages that the server has broadcast.
+ *
+ * The index is an inverted index. Each word (term) maps to a posting list of the ids of the messages containing it.
+ * Messages are handed over from the ServerClientInteraction threads through a queue so that the broadcast is never
+ * held up by indexing. Only the most recent MAX_MESSAGES messages are kept, older postings are evicted.
+ */
+public class ChatHistoryIndex implements Runnable {
+
+    //maximum number of messages kept in the index before the oldest is evicted
+    private static final int MAX_MESSAGES = 1000;
+    //maximum number of results returned by a search
+    private static final int MAX_RESULTS = 5;
+
+    //messages waiting to be added to the index. Filled by the broadcast path, emptied by this thread.
+    private LinkedBlockingQueue<String> pendingMessages = new LinkedBlockingQueue<>();
+    //term -> ids of the messages containing that term
+    private HashMap<String, PostingList> index = new HashMap<>();
+    //message id -> message text, for the messages currently in the index
+    private HashMap<Integer, String> messages = new HashMap<>();
+    //ids of the messages in the index, oldest first. Used to know what to evict.
+    private ArrayDeque<Integer> messageOrder = new ArrayDeque<>();
+    private int nextMessageId = 0;
+
+
+    /**
+     * Method Purpose - queue a message to be indexed.
+     *
+     * This does not touch the index itself so it is cheap to call from the broadcast loop.
+     *
+     * @param message
+     */
+    public void addMessage(String message) {
+        pendingMessages.offer(message);
+    }
+
+
+    /**
+     * Method Purpose - take messages off the queue and add them to the index.
+     *
+     * take() waits until there is a message so the thread does nothing while the chat is quiet.
+     */
+    public void run() {
+        try {
+            while (true) {
+                indexMessage(pendingMessages.take());
+            }
+        } catch (InterruptedException e) {
+            //nothing interrupts this thread, it is a daemon and ends with the server. take() needs the catch.
+        }
+    }
+
+
+    /**
+     * Method Purpose - give the message an id, add the id to the posting list of each of its terms and evict the
+     * oldest message if the index is full.
+     * Method is synchronized so a search never sees the index half updated.
+     *
+     * @param message
+     */
+    private synchronized void indexMessage(String message) {
+        int messageId = nextMessageId++;
+        messages.put(messageId, message);
+        messageOrder.addLast(messageId);
+
+        for (String term : getTerms(message)) {
+            PostingList postingList = index.get(term);
+            if (postingList == null) {
+                postingList = new PostingList();
+                index.put(term, postingList);
+            }
+            //ids are handed out in increasing order so each posting list stays sorted
+            postingList.add(messageId);
+        }
+
+        if (messageOrder.size() > MAX_MESSAGES) {
+            evictOldestMessage();
+        }
+    }
+
+
+    /**
+     * Method Purpose - remove the oldest message and its postings from the index.
+     *
+     * The oldest message always has the smallest id, so it is at the front of every posting list it is in.
+     */
+    private void evictOldestMessage() {
+        int oldestId = messageOrder.removeFirst();
+        String oldestMessage = messages.remove(oldestId);
+
+        for (String term : getTerms(oldestMessage)) {
+            PostingList postingList = index.get(term);
+            postingList.removeFirst();
+            //drop terms that no longer appear in any message
+            if (postingList.isEmpty()) {
+                index.remove(term);
+            }
+        }
+    }
+
+
+    /**
+     * Method Purpose - find the messages that best match the given search terms.
+     *
+     * Only the posting lists of the search terms are looked at, the messages are never scanned.
+     * Messages matching more of the terms come first, ties are broken by the most recent message.
+     *
+     * @param query
+     * @return the best matching messages, at most MAX_RESULTS of them
+     */
+    public synchronized ArrayList<String> search(String query) {
+        //message id -> how many of the search terms it contains
+        HashMap<Integer, Integer> matchCounts = new HashMap<>();
+        for (String term : getTerms(query)) {
+            PostingList postingList = index.get(term);
+            if (postingList != null) {
+                for (int i = 0; i < postingList.size(); i++) {
+                    matchCounts.merge(postingList.get(i), 1, Integer::sum);
+                }
+            }
+        }
+
+        ArrayList<Integer> matchingIds = new ArrayList<>(matchCounts.keySet());
+        matchingIds.sort((a, b) -> {
+            int compareCounts = Integer.compare(matchCounts.get(b), matchCounts.get(a));
+            if (compareCounts != 0) {
+                return compareCounts;
+            }
+            return Integer.compare(b, a);
+        });
+
+        ArrayList<String> results = new ArrayList<>();
+        for (int i = 0; i < matchingIds.size() && i < MAX_RESULTS; i++) {
+            results.add(messages.get(matchingIds.get(i)));
+        }
+        return results;
+    }
+
+
+    /**
+     * Method Purpose - split text into lower case words. Each word is only returned once.
+     *
+     * @param text
+     * @return set of terms in the text
+     */
+    private HashSet<String> getTerms(String text) {
+        HashSet<String> terms = new HashSet<>();
+        for (String term : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+
+    /**
+     * A sorted list of message ids stored in an int array rather than a list of Integer objects to keep it compact.
+     * Ids are added at the end and removed from the front, start marks the first id still in use.
+     */
+    private static class PostingList {
+        private int[] ids = new int[4];
+        private int start = 0;
+        private int end = 0;
+
+        /**
+         * Method Purpose - add an id to the end of the list, making room if the array is full.
+         *
+         * @param id
+         */
+        void add(int id) {
+            if (end == ids.length) {
+                //if more than half of the array is evicted ids then shift the ids back to the start,
+                //otherwise double the size of the array.
+                int[] newIds = (start > ids.length / 2) ? ids : new int[ids.length * 2];
+                System.arraycopy(ids, start, newIds, 0, end - start);
+                ids = newIds;
+                end = end - start;
+                start = 0;
+            }
+            ids[end++] = id;
+        }
+
+        void removeFirst() {
+            start++;
+        }
+
+        int get(int i) {
+            return ids[start + i];
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+    }
+
+}
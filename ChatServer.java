@@ -1,6 +1,8 @@
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 
 /**
@@ -13,12 +15,16 @@ public class ChatServer {
     private ArrayList<Socket> listOfClientSockets = new ArrayList<>();
     //ServerClientInteraction threads are added to this list.
     private  ArrayList<ServerClientInteraction> listOfServerClientInteractions = new ArrayList<>();
+    //searchable index of the messages broadcast by the server. Used by the *SEARCH command.
+    private ChatHistoryIndex chatHistoryIndex = new ChatHistoryIndex();
 
     /**
      * Constructor.
      * Purpose - sets up server socket with the port passed into constructor.
      *
      * It instantiates the serverSocket for a specific port.
+     * The serverSocket is made from a ServerSocketChannel so every accepted socket has a channel. This lets the
+     * ClientOutbox write batches of messages with one gathering write.
      * If port is already in use then the constructor will not be created and the Catch in the main method will be used.
      *
      * @param port
@@ -26,7 +32,9 @@ public class ChatServer {
     public ChatServer(int port) {
         try {
             //instantiate socket with given port
-            serverSocket = new ServerSocket(port);
+            ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+            serverSocketChannel.bind(new InetSocketAddress(port));
+            serverSocket = serverSocketChannel.socket();
         } catch (IOException e) {
             //Exception if port is already in use.
         }
@@ -54,6 +62,13 @@ public class ChatServer {
         Thread exitThread = new Thread(new ServerCheckExit(this));
         exitThread.start();
 
+        //create thread to add broadcast messages to the chat history index.
+        //this is a separate thread so that indexing does not slow down sending messages to the clients.
+        //it is a daemon thread so it never keeps the server running on its own.
+        Thread indexThread = new Thread(chatHistoryIndex);
+        indexThread.setDaemon(true);
+        indexThread.start();
+
         try {
             //notifies user if the server has been set up correctly
             if (serverSocket.isBound()) {
@@ -137,6 +152,26 @@ public class ChatServer {
     }
 
 
+    /**
+     * Method Purpose - Retrieve a copy of the list of Server Client Interactions so messages can be sent to every client.
+     * Note that method is synchronized.
+     * A copy is returned so a client being removed by another thread can not change the list while it is looped through.
+     * @return copy of the list of server client interactions
+     */
+    public synchronized ArrayList<ServerClientInteraction> getListOfServerClientInteractions(){
+        return new ArrayList<>(listOfServerClientInteractions);
+    }
+
+
+    /**
+     * Method Purpose - Retrieve the chat history index so messages can be added to it and searched.
+     * @return chat history index
+     */
+    public ChatHistoryIndex getChatHistoryIndex(){
+        return chatHistoryIndex;
+    }
+
+
     /**
      * Method Purpose - remove a socket from the arraylist
      * Note that method is synchronized.
@@ -151,6 +186,9 @@ public class ChatServer {
      * Purpose - Disconnect all the client's from the server. Close the Server Socket and end the program.
      *
      * Loops through all the clients in the arrayList storing the ServerClientInteraction threads.
+     * Every client is sent a shutdown notice first.
+     * Every client outbox is then told to start closing, so the time allowed for the queued messages to be sent is
+     * shared by all the clients rather than added up one client after another.
      * It calls the closeSocket method of the client interaction thread accessed from the arraylist to close the thread.
      * The serverSocket is then closed.
      * After this is done System.exit shuts down the program.
@@ -161,6 +199,12 @@ public class ChatServer {
     public synchronized void terminateSession() {
         System.out.println("Closing Server");
         try {
+            for (int i = 0; i < listOfServerClientInteractions.size(); i++) {
+                listOfServerClientInteractions.get(i).send("* System * - Server is shutting down", ClientOutbox.Priority.SYSTEM);
+            }
+            for (int i = 0; i < listOfServerClientInteractions.size(); i++) {
+                listOfServerClientInteractions.get(i).startClosingOutbox();
+            }
             for (int i = 0; i < listOfServerClientInteractions.size(); i++) {
                 listOfServerClientInteractions.get(i).closeSocket();
             }
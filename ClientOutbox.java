@@ -0,0 +1,336 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Thread is used to send messages from the server to one client.
+ *
+ * Messages are put into one of four lanes depending on their priority. The highest priority lane with messages
+ * waiting is always sent first, so system and control messages are not held up behind a flood of chat messages.
+ * To stop the lower lanes from never being sent while a room is busy, a lane that has been passed over too many times
+ * is sent next.
+ * The chat and bulk lanes have a size limit. If a client is not reading fast enough the oldest messages in a full lane
+ * are dropped and the client is told how many were dropped, so a slow client can not use up the server's memory.
+ * The control and system lanes have no limit as they only ever hold a few messages.
+ *
+ * Messages are written in batches. When the client is idle a message is written straight away. When messages are
+ * building up the thread waits a short time for more so that they are written together in one batch.
+ */
+public class ClientOutbox implements Runnable {
+
+    /**
+     * Priority classes for messages sent to a client, from highest to lowest.
+     */
+    public enum Priority {
+        //replies to commands such as the *EXIT acknowledgement
+        CONTROL,
+        //system notices such as "has joined", "has left" and shutdown
+        SYSTEM,
+        //ordinary chat messages
+        CHAT,
+        //large amounts of data such as search results from the chat history
+        BULK
+    }
+
+    //how many messages from higher lanes can be sent while a message waits in the lane before the lane is sent anyway.
+    //index matches Priority.ordinal(). The control lane is never passed over so it has no limit.
+    private static final int[] STARVATION_LIMITS = {Integer.MAX_VALUE, 8, 16, 32};
+    //how long close() waits for the waiting messages to be sent
+    private static final long CLOSE_TIMEOUT_MS = 500;
+    //a batch is written once it reaches either of these sizes
+    private static final int MAX_BATCH_MESSAGES = 64;
+    private static final int MAX_BATCH_CHARS = 16 * 1024;
+    //longest time to wait for a batch to fill up when the client is busy
+    private static final long MAX_BATCH_WAIT_MS = 2;
+    //most messages and characters the chat and bulk lanes can each hold before the oldest messages are dropped
+    private static final int MAX_LANE_MESSAGES = 1024;
+    private static final int MAX_LANE_CHARS = 256 * 1024;
+
+    private BatchingWriter batchingWriter;
+    //one queue of messages per priority, index matches Priority.ordinal()
+    private ArrayList<ArrayDeque<String>> lanes = new ArrayList<>();
+    //how many times each lane has been passed over while it had a message waiting
+    private int[] timesPassedOver;
+    //number of characters in all the lanes, used to know when a batch is big enough
+    private int queuedChars = 0;
+    //number of characters in each lane, index matches Priority.ordinal()
+    private int[] laneChars;
+    //messages dropped from full lanes since the client was last told about it
+    private int droppedMessages = 0;
+    //true if the last batch had more than one message or left messages behind, meaning messages are building up.
+    //cleared whenever the thread has to wait for a message, as that means the client is idle
+    private boolean busy = false;
+    private boolean closing = false;
+    private boolean finished = false;
+    //time close() stops waiting for the queued messages to be sent. Set the first time the outbox starts closing.
+    private long closeDeadline;
+
+    /**
+     * Constructor.
+     * Purpose - sets up the batching writer for the socket's channel and the empty lanes.
+     *
+     * @param socket
+     */
+    public ClientOutbox(Socket socket) {
+        int numberOfLanes = Priority.values().length;
+        for (int i = 0; i < numberOfLanes; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+        timesPassedOver = new int[numberOfLanes];
+        laneChars = new int[numberOfLanes];
+
+        //a socket from a ServerSocketChannel has a channel that supports gathering writes.
+        //any other socket falls back to writing the batch through a PrintWriter.
+        try {
+            if (socket.getChannel() != null) {
+                batchingWriter = new BatchingWriter(socket.getChannel());
+            } else {
+                batchingWriter = new BatchingWriter(socket.getOutputStream());
+            }
+        } catch (IOException e) {
+            System.err.println("failed to get output stream");
+        }
+    }
+
+
+    /**
+     * Method Purpose - queue a message to be sent to the client in the lane for its priority.
+     * Messages sent after the outbox has been closed are dropped.
+     * If the message goes in the chat or bulk lane and the lane is full then the oldest messages in it are dropped to
+     * make room.
+     *
+     * @param message
+     * @param priority
+     */
+    public synchronized void send(String message, Priority priority) {
+        if (closing) {
+            return;
+        }
+        int lane = priority.ordinal();
+        if (priority == Priority.CHAT || priority == Priority.BULK) {
+            while (!lanes.get(lane).isEmpty() && (lanes.get(lane).size() >= MAX_LANE_MESSAGES
+                    || laneChars[lane] + message.length() > MAX_LANE_CHARS)) {
+                removeFromLane(lane);
+                droppedMessages++;
+            }
+        }
+        addToLane(lane, message);
+        //wake up the thread if it is waiting for a message
+        notifyAll();
+    }
+
+
+    /**
+     * Method Purpose - keep taking the next batch of messages and sending it to the client until the outbox is closed.
+     *
+     * The batch is written outside of the synchronized block so other threads can keep queueing messages while a
+     * slow client is being written to.
+     * If the client can not be written to then the rest of the messages are dropped and the thread ends.
+     */
+    public void run() {
+        try {
+            ArrayList<String> batch;
+            while (batchingWriter != null && (batch = takeNextBatch()) != null) {
+                try {
+                    batchingWriter.write(batch);
+                } catch (IOException e) {
+                    //the client has gone so stop the thread rather than waiting for more messages
+                    break;
+                }
+            }
+            stopAfterWriteFailure();
+        } catch (InterruptedException e) {
+            //thread has been asked to stop, nothing else needs to be done.
+        } finally {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * Method Purpose - wait for messages and take the next batch to be sent.
+     *
+     * If the last batch showed the client is busy, it waits up to MAX_BATCH_WAIT_MS for the batch to fill up.
+     * If the outbox was empty when it was called then the client is idle, so the message is sent without waiting.
+     * It does not wait if a control message is waiting or the outbox is closing.
+     * Messages are then taken in priority order until the lanes are empty or the batch is full.
+     *
+     * @return next batch, or null if the outbox is closed and every lane is empty
+     * @throws InterruptedException
+     */
+    private synchronized ArrayList<String> takeNextBatch() throws InterruptedException {
+        if (allLanesEmpty()) {
+            busy = false;
+        }
+        while (allLanesEmpty() && !closing) {
+            wait();
+        }
+        if (allLanesEmpty()) {
+            return null;
+        }
+
+        if (busy) {
+            long deadline = System.currentTimeMillis() + MAX_BATCH_WAIT_MS;
+            long timeLeft = MAX_BATCH_WAIT_MS;
+            while (timeLeft > 0 && !closing && queuedChars < MAX_BATCH_CHARS
+                    && queuedMessages() < MAX_BATCH_MESSAGES
+                    && lanes.get(Priority.CONTROL.ordinal()).isEmpty()) {
+                wait(timeLeft);
+                timeLeft = deadline - System.currentTimeMillis();
+            }
+        }
+
+        //tell the client about the dropped messages before anything else that is waiting in the lower lanes
+        if (droppedMessages > 0) {
+            addToLane(Priority.SYSTEM.ordinal(), "* System * - " + droppedMessages
+                    + " messages were not delivered as they could not be sent to you fast enough");
+            droppedMessages = 0;
+        }
+
+        ArrayList<String> batch = new ArrayList<>();
+        int batchChars = 0;
+        while (!allLanesEmpty() && batch.size() < MAX_BATCH_MESSAGES && batchChars < MAX_BATCH_CHARS) {
+            String message = takeNextMessage();
+            batch.add(message);
+            batchChars += message.length();
+        }
+
+        busy = batch.size() > 1 || !allLanesEmpty();
+        return batch;
+    }
+
+
+    /**
+     * Method Purpose - take a message from the lane that should be sent next. At least one lane must not be empty.
+     *
+     * A lane that has been passed over as many times as its starvation limit is taken first.
+     * Otherwise the highest priority lane with a message waiting is taken.
+     * Every lower lane with a message waiting is then counted as passed over.
+     *
+     * @return next message
+     */
+    private String takeNextMessage() {
+        int chosenLane = -1;
+        for (int i = 0; i < lanes.size() && chosenLane == -1; i++) {
+            if (!lanes.get(i).isEmpty() && timesPassedOver[i] >= STARVATION_LIMITS[i]) {
+                chosenLane = i;
+            }
+        }
+        for (int i = 0; i < lanes.size() && chosenLane == -1; i++) {
+            if (!lanes.get(i).isEmpty()) {
+                chosenLane = i;
+            }
+        }
+
+        timesPassedOver[chosenLane] = 0;
+        for (int i = chosenLane + 1; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty()) {
+                timesPassedOver[i]++;
+            }
+        }
+        return removeFromLane(chosenLane);
+    }
+
+
+    /**
+     * Method Purpose - add a message to the end of a lane and count its characters.
+     *
+     * @param lane
+     * @param message
+     */
+    private void addToLane(int lane, String message) {
+        lanes.get(lane).addLast(message);
+        laneChars[lane] += message.length();
+        queuedChars += message.length();
+    }
+
+
+    /**
+     * Method Purpose - take the oldest message from a lane and stop counting its characters.
+     *
+     * @param lane
+     * @return the oldest message in the lane
+     */
+    private String removeFromLane(int lane) {
+        String message = lanes.get(lane).removeFirst();
+        laneChars[lane] -= message.length();
+        queuedChars -= message.length();
+        return message;
+    }
+
+
+    private boolean allLanesEmpty() {
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private int queuedMessages() {
+        int total = 0;
+        for (int i = 0; i < lanes.size(); i++) {
+            total += lanes.get(i).size();
+        }
+        return total;
+    }
+
+
+    /**
+     * Method Purpose - drop the queued messages and stop accepting new ones once the client can not be written to.
+     * If the outbox finished normally the lanes are already empty so this changes nothing.
+     */
+    private synchronized void stopAfterWriteFailure() {
+        startClosing();
+        for (int i = 0; i < lanes.size(); i++) {
+            lanes.get(i).clear();
+            laneChars[i] = 0;
+        }
+        queuedChars = 0;
+    }
+
+
+    /**
+     * Method Purpose - stop accepting messages and start the CLOSE_TIMEOUT_MS for the queued messages to be sent.
+     *
+     * Calling it again does not restart the timeout. This lets the server start closing every outbox at once so they
+     * all share one deadline when it shuts down.
+     */
+    public synchronized void startClosing() {
+        if (!closing) {
+            closing = true;
+            closeDeadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+            notifyAll();
+        }
+    }
+
+
+    /**
+     * Method Purpose - stop accepting messages and wait for the messages already queued to be sent.
+     *
+     * It is called before the socket is closed so that messages such as "has left the chat" still reach the client.
+     * It gives up at the close deadline so a client that is not reading can not stop the server from closing.
+     */
+    public synchronized void close() {
+        startClosing();
+
+        try {
+            while (!finished) {
+                long timeLeft = closeDeadline - System.currentTimeMillis();
+                if (timeLeft <= 0) {
+                    break;
+                }
+                wait(timeLeft);
+            }
+        } catch (InterruptedException e) {
+            //stop waiting, the socket will be closed anyway.
+        }
+    }
+
+}
@@ -1,8 +1,8 @@
 import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.ArrayList;
 
 /**
  * Aim of thread is to take in data from the client and send it to all the clients from the arrayList.
@@ -13,6 +13,8 @@ import java.net.Socket;
 public class ServerClientInteraction implements Runnable {
     private Socket socket;
     private ChatServer chatServer;
+    //queues the messages sent to this client by priority and writes them to the socket on its own thread.
+    private ClientOutbox clientOutbox;
 
     private boolean clientLeftChat = false;
 
@@ -26,6 +28,7 @@ public class ServerClientInteraction implements Runnable {
         //this. refers to the socket defined in the class.
         this.socket = socket;
         this.chatServer = chatServer;
+        this.clientOutbox = new ClientOutbox(socket);
     }
 
 
@@ -34,6 +37,7 @@ public class ServerClientInteraction implements Runnable {
      * calls the getTextAndSendToClient.
      *
      * Sets up inputStreamReader and Buffered reader to get input from the socket.
+     * Sends off the client outbox thread which sends all the messages to this client.
      * Other methods are called.
      */
     public void run() {
@@ -43,16 +47,18 @@ public class ServerClientInteraction implements Runnable {
             InputStreamReader reader = new InputStreamReader(socket.getInputStream());
             // client In stored the data from the input stream
             BufferedReader clientIn = new BufferedReader(reader);
-            //client out allows the thread to print to the client.
-            PrintWriter clientOut;
-            clientOut = new PrintWriter(socket.getOutputStream(), true);
+            //the client outbox thread prints to the client.
+            //it is a daemon thread so it never keeps the server running on its own.
+            Thread clientOutboxThread = new Thread(clientOutbox);
+            clientOutboxThread.setDaemon(true);
+            clientOutboxThread.start();
 
             //get nickname for the client
-            nickname = getNickname(clientIn, clientOut);
+            nickname = getNickname(clientIn);
             //send message to all other clients that a new client has joined.
-            sendNewClientMessage(nickname, clientOut);
+            sendNewClientMessage(nickname);
             //this method gets text from the client and sends it to all the other clients.
-            getTextAndSendToClients(nickname, clientIn,clientOut);
+            getTextAndSendToClients(nickname, clientIn);
 
         } catch (IOException e) {
 
@@ -64,12 +70,11 @@ public class ServerClientInteraction implements Runnable {
      * Method Purpose - Get a nickname for the new client that has joined.
      *
      * @param clientIn
-     * @param clientOut
      * @return inputNickname
      */
-    private String getNickname(BufferedReader clientIn,PrintWriter clientOut){
+    private String getNickname(BufferedReader clientIn){
         String inputNickname = "";
-        clientOut.println("* System * - Please enter a nickname for a client:");
+        send("* System * - Please enter a nickname for a client:", ClientOutbox.Priority.SYSTEM);
 
         //input nickname from the client
         try{
@@ -81,11 +86,13 @@ public class ServerClientInteraction implements Runnable {
 
         //if the user enters nothing then the user's nickname is set to anonymous client
         if (inputNickname.equals("")) {
-            clientOut.println("* System * - No nickname entered.");
+            send("* System * - No nickname entered.", ClientOutbox.Priority.SYSTEM);
             inputNickname = "Anonymous Client";
         }
-        clientOut.println("* System * - Nickname Set as " + inputNickname);
-        clientOut.println("* System * - Welcome to the chat! To leave chat type *EXIT");
+        send("* System * - Nickname Set as " + inputNickname, ClientOutbox.Priority.SYSTEM);
+        send("* System * - Welcome to the chat! To leave chat type *EXIT", ClientOutbox.Priority.SYSTEM);
+        send("* System * - To search earlier messages type *SEARCH followed by the words to look for",
+                ClientOutbox.Priority.SYSTEM);
 
         return inputNickname;
     }
@@ -95,18 +102,13 @@ public class ServerClientInteraction implements Runnable {
      * Method Purpose - send a message to all the clients on the chat that a new user has joined.
      *
      * @param nickname
-     * @param clientOut
      */
-    private void sendNewClientMessage(String nickname, PrintWriter clientOut){
-        for (int i = 0; i < chatServer.getListOfClientSockets().size(); i++) {
-            try {
-                //instantiate client out for each socket
-                clientOut = new PrintWriter(chatServer.getListOfClientSockets().get(i).getOutputStream(), true);
-                //send message to everyone
-                clientOut.println("* System * - " + nickname + " has joined the chat.");
-            } catch (IOException e){
-                //must be in a try catch to allow client out to work.
-            }
+    private void sendNewClientMessage(String nickname){
+        ArrayList<ServerClientInteraction> listOfServerClientInteractions = chatServer.getListOfServerClientInteractions();
+        for (int i = 0; i < listOfServerClientInteractions.size(); i++) {
+            //send message to everyone
+            listOfServerClientInteractions.get(i)
+                    .send("* System * - " + nickname + " has joined the chat.", ClientOutbox.Priority.SYSTEM);
         }
     }
 
@@ -114,48 +116,69 @@ public class ServerClientInteraction implements Runnable {
     /**
      *
      * Loop keeps getting input from the socket.
-     * If user input "*EXIT" user inputs then a boolean flag checking if client wants to leave chat is set to true.
-     * The inputted text is then sent to all the clients in the listOfClients sockets
+     * readLine waits until the client sends a line. It returns null once the client has closed the connection, in which
+     * case the disconnect method is called and the loop is left.
+     * If user input "*EXIT" user inputs then a boolean flag checking if client wants to leave chat is set to true and
+     * the client is sent an acknowledgement.
+     * If user inputs "*SEARCH" followed by some words then the best matching earlier messages are sent back to that
+     * client only and nothing is sent to the other clients.
+     * The inputted text is then sent to all the clients in the listOfServerClientInteractions
      * if the clientLeftChat boolean is true then the disconnect method is called.
+     * If the client can no longer be read from, for example it closed without typing *EXIT, then the disconnect method
+     * is also called so the client is removed from the lists and its outbox thread is stopped.
      *
      * This method satisfies server requirements 3 and 4
      *
      * @param nickname
      * @param clientIn
-     * @param clientOut
      */
-    private void getTextAndSendToClients(String nickname, BufferedReader clientIn, PrintWriter clientOut){
+    private void getTextAndSendToClients(String nickname, BufferedReader clientIn){
         try {
-            while (true) {
-                String userInput = "";
-
-                //.ready will return true if the client socket has data to read
-                if (clientIn.ready()) {
-                    //userInput is the text sent from the client.
-                    userInput = clientIn.readLine();
+            while (!clientLeftChat) {
+                //userInput is the text sent from the client.
+                //ready() is not used to check for data as the socket comes from a channel, and on older versions of
+                //java the channel's input stream always says there is no data ready.
+                String userInput = clientIn.readLine();
 
+                if (userInput == null) {
+                    //the client has gone without typing *EXIT.
+                    System.out.println(nickname + " using " + socket + " has lost connection.");
+                    disconnect();
+                    break;
+                } else {
                     if (userInput.equals("*EXIT")) {
                         clientLeftChat = true;
+                        send("* System * - You have left the chat", ClientOutbox.Priority.CONTROL);
+                    } else if (userInput.equals("*SEARCH") || userInput.startsWith("*SEARCH ")) {
+                        //only the command itself is matched so chat such as "*SEARCHLIGHT" is still sent to everyone
+                        sendSearchResults(userInput.substring("*SEARCH".length()).trim());
+                        continue;
                     }
 
-                    //loops through all the client sockets in the arrayList.
-                    //getListOfClientSockets is a method in chatserver
-                    for (int i = 0; i < chatServer.getListOfClientSockets().size(); i++) {
+                    //loops through all the server client interactions in the arrayList.
+                    //getListOfServerClientInteractions is a method in chatserver that returns a copy of the list
+                    ArrayList<ServerClientInteraction> listOfServerClientInteractions =
+                            chatServer.getListOfServerClientInteractions();
+                    for (int i = 0; i < listOfServerClientInteractions.size(); i++) {
 
-                        //Client out writes it back to the client. Server does not print anything out.
-                        //client out is different for the different sockets.
-                        clientOut = new PrintWriter(chatServer.getListOfClientSockets().get(i).getOutputStream(), true);
+                        //the message is queued in the outbox of each client. Server does not print anything out.
+                        ServerClientInteraction sci = listOfServerClientInteractions.get(i);
 
                         if (clientLeftChat) {
                             //output a closing message to all the users on the system.
-                            clientOut.println("* System * - " + nickname + " has left the chat");
+                            sci.send("* System * - " + nickname + " has left the chat", ClientOutbox.Priority.SYSTEM);
                         } else {
                             //This sends the message to the client.
-                            clientOut.println(nickname + ": " + userInput);
+                            sci.send(nickname + ": " + userInput, ClientOutbox.Priority.CHAT);
                         }
 
                     }
 
+                    //add the message to the chat history index. This only queues it so the broadcast is not held up.
+                    if (!clientLeftChat) {
+                        chatServer.getChatHistoryIndex().addMessage(nickname + ": " + userInput);
+                    }
+
                     //once all clients have been sent closing message, disconnect thread
                     if (clientLeftChat) {
                         System.out.println(nickname + " using " + socket + " has left the chat.");
@@ -163,12 +186,50 @@ public class ServerClientInteraction implements Runnable {
                     }
                 }
             }
-        } catch (Exception e){
-            //try catch is needed for getting data from the Client In
+        } catch (IOException e){
+            //the client has gone without typing *EXIT.
+            System.out.println(nickname + " using " + socket + " has lost connection.");
+            disconnect();
         }
     }
 
 
+    /**
+     * Method Purpose - search the chat history index and send the results back to this client only.
+     *
+     * The results are history replay so they are sent in the bulk lane and do not hold up the chat.
+     *
+     * @param query
+     */
+    private void sendSearchResults(String query) {
+        if (query.isEmpty()) {
+            send("* System * - Please enter words to search for after *SEARCH", ClientOutbox.Priority.CONTROL);
+            return;
+        }
+
+        ArrayList<String> results = chatServer.getChatHistoryIndex().search(query);
+        if (results.isEmpty()) {
+            send("* System * - No messages found for: " + query, ClientOutbox.Priority.BULK);
+        } else {
+            send("* System * - Top matches for: " + query, ClientOutbox.Priority.BULK);
+            for (int i = 0; i < results.size(); i++) {
+                send("* Search * - " + results.get(i), ClientOutbox.Priority.BULK);
+            }
+        }
+    }
+
+
+    /**
+     * Method Purpose - queue a message to be sent to this client.
+     *
+     * @param message
+     * @param priority lane the message is sent in. Higher lanes are sent first.
+     */
+    public void send(String message, ClientOutbox.Priority priority) {
+        clientOutbox.send(message, priority);
+    }
+
+
     /**
      * Method Purpose - Removes socket from the array list, removes server client interaction
      * threads from the arraylist and calls the close socket thread.
@@ -186,14 +247,28 @@ public class ServerClientInteraction implements Runnable {
     }
 
 
+    /**
+     * Method Purpose - stop accepting messages for this client and start the time limit for sending the queued ones.
+     * Used by the chat server so every client shares one time limit when the server shuts down.
+     */
+    public void startClosingOutbox(){
+        clientOutbox.startClosing();
+    }
+
+
     /**
      * Method Purpose - to close the socket
+     *
+     * The client outbox is closed first so the messages already queued for the client are sent before the socket closes.
      */
     public void closeSocket(){
+        clientOutbox.close();
+        //a socket from a channel prints as unconnected once closed, so save its description first
+        String socketDescription = socket.toString();
         try {
             socket.close();
             //print to server
-            System.out.println(socket + " has been closed");
+            System.out.println(socketDescription + " has been closed");
 
         } catch (IOException e){
             System.err.println("Server could not disconnect");